@@ -0,0 +1,356 @@
+/*
+ * @(#)CoalescingSearcher.java
+ * Copyright © 2022. Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package ch.randelshofer.binarysearch;
+
+import jdk.incubator.vector.IntVector;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coalesces concurrent single-key searches into batches, so that they can be
+ * processed with {@link BranchlessBinarySearch#binarySearchVectorized}.
+ * <p>
+ * Each call to {@link #binarySearch(int)} enqueues the key into a lock-free
+ * multiple-producer single-consumer queue, and parks the calling thread until
+ * the result is available. A dispatcher thread drains the queue into a
+ * batch of at most {@code maxBatchSize} keys, searches all keys of the batch
+ * with the vectorized algorithm, and then unparks the waiting threads.
+ * <p>
+ * The tradeoff between latency and throughput is controlled with two
+ * parameters:
+ * <dl>
+ *     <dt>{@code maxBatchSize}</dt>
+ *     <dd>The maximal number of keys that are searched in one batch.
+ *     The default is the length of the preferred {@link IntVector} species.</dd>
+ *     <dt>{@code maxDelay}</dt>
+ *     <dd>The maximal time that the dispatcher waits for more keys after it
+ *     has received the first key of a batch. The dispatcher spins briefly,
+ *     and then parks until more keys arrive or the delay has elapsed.
+ *     The default is zero: the dispatcher searches all keys that have arrived
+ *     so far, and does not wait for more. Under load, keys accumulate while
+ *     the dispatcher is busy, and the batches fill up without any delay.</dd>
+ * </dl>
+ * <p>
+ * The array must not be modified while the searcher is in use.
+ * The searcher must be closed when it is no longer needed, so that the
+ * dispatcher thread terminates.
+ * <p>
+ * If the dispatcher thread fails with an exception, the searcher closes
+ * itself, and all pending and future searches throw an
+ * {@link IllegalStateException} with the exception as its cause.
+ */
+public final class CoalescingSearcher implements AutoCloseable {
+    /**
+     * The maximal value of {@code maxBatchSize}.
+     */
+    public static final int MAX_BATCH_SIZE = 1 << 16;
+    /**
+     * Number of spins before the dispatcher parks, while it waits for a batch
+     * to fill up.
+     */
+    private static final int MAX_SPINS = 100;
+
+    private final int[] a;
+    private final int fromIndex;
+    private final int toIndex;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BatchSearch batchSearch;
+    private final Request[] batch;
+    private final int[] keys;
+    private final int[] results;
+
+    /**
+     * The tail of the queue. Producers append to the tail.
+     */
+    private final AtomicReference<Request> tail;
+    /**
+     * The head of the queue. This is a stub node, its successor is the
+     * first request in the queue. Only accessed by the dispatcher thread.
+     */
+    private Request head;
+    private volatile boolean closed;
+    /**
+     * Set to true while the dispatcher may park to wait for more requests.
+     */
+    private volatile boolean waiting;
+    private volatile Throwable failure;
+    private final Thread dispatcher;
+
+    /**
+     * Creates a new instance with a batch size of one vector and no delay.
+     *
+     * @param a         the array, must be sorted in ascending order
+     * @param fromIndex from inclusive
+     * @param toIndex   to exclusive
+     */
+    public CoalescingSearcher(int[] a, int fromIndex, int toIndex) {
+        this(a, fromIndex, toIndex, IntVector.SPECIES_PREFERRED.length(), 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param a            the array, must be sorted in ascending order
+     * @param fromIndex    from inclusive
+     * @param toIndex      to exclusive
+     * @param maxBatchSize the maximal number of keys per batch
+     * @param maxDelay     the maximal time to wait for more keys, after the
+     *                     first key of a batch has been received
+     * @param unit         the time unit of {@code maxDelay}
+     * @throws IndexOutOfBoundsException if the range is out of bounds
+     * @throws IllegalArgumentException  if {@code maxBatchSize} is less than 1
+     *                                   or greater than {@link #MAX_BATCH_SIZE},
+     *                                   or if {@code maxDelay} is negative
+     */
+    public CoalescingSearcher(int[] a, int fromIndex, int toIndex,
+                              int maxBatchSize, long maxDelay, TimeUnit unit) {
+        this(a, fromIndex, toIndex, maxBatchSize, maxDelay, unit,
+                BranchlessBinarySearch::binarySearchVectorized);
+    }
+
+    CoalescingSearcher(int[] a, int fromIndex, int toIndex,
+                       int maxBatchSize, long maxDelay, TimeUnit unit,
+                       BatchSearch batchSearch) {
+        Objects.checkFromToIndex(fromIndex, toIndex, a.length);
+        if (maxBatchSize < 1 || maxBatchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("maxBatchSize=" + maxBatchSize);
+        }
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("maxDelay=" + maxDelay);
+        }
+        this.a = a;
+        this.fromIndex = fromIndex;
+        this.toIndex = toIndex;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.batchSearch = batchSearch;
+        batch = new Request[maxBatchSize];
+        keys = new int[maxBatchSize];
+        results = new int[maxBatchSize];
+
+        head = new Request(0, null);
+        tail = new AtomicReference<>(head);
+
+        dispatcher = new Thread(this::dispatch, "CoalescingSearcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Searches for the provided key in the array.
+     * <p>
+     * Blocks until the batch that contains the key has been searched.
+     * If the calling thread is interrupted while it is blocked, it keeps
+     * waiting, and its interrupt status is set again when this method returns.
+     *
+     * @param key the key
+     * @return the same value as {@link BranchlessBinarySearch#binarySearch}
+     * @throws IllegalStateException if this searcher has been closed, or
+     *                               if the dispatcher thread has failed
+     */
+    public int binarySearch(int key) {
+        if (closed) {
+            throw closedException();
+        }
+
+        Request request = new Request(key, Thread.currentThread());
+        tail.getAndSet(request).next = request;
+
+        boolean interrupted = false;
+        if (closed) {
+            // The dispatcher may have terminated before it could see the
+            // request. Once it has terminated, the request is either done
+            // or it will never be done.
+            interrupted = joinDispatcher();
+        } else {
+            if (waiting) {
+                LockSupport.unpark(dispatcher);
+            }
+            while (!request.done) {
+                LockSupport.park(this);
+                interrupted |= Thread.interrupted();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!request.done) {
+            throw closedException();
+        }
+        if (request.failure != null) {
+            throw new IllegalStateException("search failed", request.failure);
+        }
+        return request.result;
+    }
+
+    /**
+     * Stops accepting new keys, and waits until the dispatcher thread has
+     * searched all keys that have already been accepted.
+     * <p>
+     * If the calling thread is interrupted while it is waiting, it keeps
+     * waiting, and its interrupt status is set again when this method returns.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(dispatcher);
+        if (joinDispatcher()) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private IllegalStateException closedException() {
+        return new IllegalStateException("closed", failure);
+    }
+
+    /**
+     * Waits uninterruptibly until the dispatcher thread has terminated.
+     *
+     * @return true if the calling thread has been interrupted while waiting
+     */
+    private boolean joinDispatcher() {
+        boolean interrupted = false;
+        for (; ; ) {
+            try {
+                dispatcher.join();
+                return interrupted;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    private Request poll() {
+        Request next = head.next;
+        if (next != null) {
+            head = next;
+        }
+        return next;
+    }
+
+    private boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    private void dispatch() {
+        try {
+            dispatchBatches();
+        } catch (Throwable t) {
+            failure = t;
+            closed = true;
+            for (Request request : batch) {
+                if (request != null) {
+                    complete(request, 0, t);
+                }
+            }
+            while (!isEmpty()) {
+                Request request = poll();
+                if (request != null) {
+                    complete(request, 0, t);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+
+    private void dispatchBatches() {
+        for (; ; ) {
+            Request first = poll();
+            if (first == null) {
+                // Read closed before tail, so that a producer that enqueues
+                // after the queue has been seen empty, also sees closed.
+                if (closed && isEmpty()) {
+                    return;
+                }
+                waiting = true;
+                if (isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+                continue;
+            }
+
+            batch[0] = first;
+            int n = 1;
+            long deadline = System.nanoTime() + maxDelayNanos;
+            int spins = 0;
+            while (n < maxBatchSize) {
+                Request request = poll();
+                if (request != null) {
+                    batch[n++] = request;
+                    continue;
+                }
+                long remaining;
+                if (maxDelayNanos == 0 || closed || (remaining = deadline - System.nanoTime()) <= 0) {
+                    break;
+                }
+                if (spins < MAX_SPINS) {
+                    spins++;
+                    Thread.onSpinWait();
+                } else {
+                    waiting = true;
+                    if (isEmpty() && !closed) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    waiting = false;
+                }
+            }
+
+            for (int i = 0; i < n; i++) {
+                keys[i] = batch[i].key;
+            }
+            batchSearch.search(a, fromIndex, toIndex, keys, 0, n, results);
+            for (int i = 0; i < n; i++) {
+                Request request = batch[i];
+                batch[i] = null;
+                complete(request, results[i], null);
+            }
+        }
+    }
+
+    private static void complete(Request request, int result, Throwable failure) {
+        Thread waiter = request.waiter;
+        request.waiter = null;
+        request.result = result;
+        request.failure = failure;
+        request.done = true;
+        LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Searches a batch of keys, see
+     * {@link BranchlessBinarySearch#binarySearchVectorized}.
+     */
+    @FunctionalInterface
+    interface BatchSearch {
+        void search(int[] a, int fromIndex, int toIndex,
+                    int[] keys, int keysFromIndex, int keysToIndex,
+                    int[] results);
+    }
+
+    /**
+     * A node in the request queue.
+     */
+    private static final class Request {
+        final int key;
+        Thread waiter;
+        volatile Request next;
+        int result;
+        Throwable failure;
+        volatile boolean done;
+
+        Request(int key, Thread waiter) {
+            this.key = key;
+            this.waiter = waiter;
+        }
+    }
+}
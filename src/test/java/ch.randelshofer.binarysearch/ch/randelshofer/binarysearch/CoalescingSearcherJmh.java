@@ -0,0 +1,93 @@
+/*
+ * @(#)CoalescingSearcherJmh.java
+ * Copyright © 2022. Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package ch.randelshofer.binarysearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static ch.randelshofer.binarysearch.ArrayUtil.rndFiftyFifty;
+import static ch.randelshofer.binarysearch.ArrayUtil.rndHitKeys;
+import static ch.randelshofer.binarysearch.ArrayUtil.rndMissKeys;
+import static ch.randelshofer.binarysearch.ArrayUtil.rndNoDuplicates;
+
+/**
+ * Compares direct scalar searches with coalesced searches, when many
+ * threads search concurrently.
+ */
+@Fork(value = 1, jvmArgsAppend = {"-XX:+UnlockExperimentalVMOptions", "--add-modules", "jdk.incubator.vector"})
+@Measurement(iterations = 2)
+@Warmup(iterations = 2)
+@Threads(8)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class CoalescingSearcherJmh {
+    private static final int[] a = rndNoDuplicates(10_000, 1000);
+    private static final int[] hitKeys = rndHitKeys(a, 1000);
+    private static final int[] missKeys = rndMissKeys(a, 10_000, 1000);
+    private static final int[] fiftyFiftyKeys = rndFiftyFifty(hitKeys, missKeys);
+
+    static {
+        Arrays.sort(a);
+    }
+
+    @State(Scope.Thread)
+    public static class KeyIndex {
+        int index;
+
+        int next() {
+            index = (index + 1) % fiftyFiftyKeys.length;
+            return fiftyFiftyKeys[index];
+        }
+    }
+
+    /**
+     * The batch sizes do not exceed the number of benchmark threads,
+     * so that a batch can fill up before the delay has elapsed.
+     */
+    @State(Scope.Benchmark)
+    public static class Searcher {
+        @Param({"2", "4", "8"})
+        public int maxBatchSize;
+        @Param({"0", "1000"})
+        public long maxDelayNanos;
+
+        CoalescingSearcher searcher;
+
+        @Setup
+        public void setup() {
+            searcher = new CoalescingSearcher(a, 0, a.length, maxBatchSize, maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @TearDown
+        public void tearDown() {
+            searcher.close();
+        }
+    }
+
+    @Benchmark
+    public int m01SearchScalar(KeyIndex keyIndex) {
+        return BranchlessBinarySearch.binarySearch(a, 0, a.length, keyIndex.next());
+    }
+
+    @Benchmark
+    public int m02SearchCoalesced(Searcher searcher, KeyIndex keyIndex) {
+        return searcher.searcher.binarySearch(keyIndex.next());
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * @(#)CoalescingSearcherTest.java
+ * Copyright © 2022. Werner Randelshofer, Switzerland. MIT License.
+ */
+
+package ch.randelshofer.binarysearch;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static ch.randelshofer.binarysearch.ArrayUtil.rndFiftyFifty;
+import static ch.randelshofer.binarysearch.ArrayUtil.rndHitKeys;
+import static ch.randelshofer.binarysearch.ArrayUtil.rndMissKeys;
+import static ch.randelshofer.binarysearch.ArrayUtil.rndNoDuplicates;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+class CoalescingSearcherTest {
+    private static final int[] a = rndNoDuplicates(10_000, 1000);
+    private static final int[] fiftyFiftyKeys = rndFiftyFifty(rndHitKeys(a, 1000), rndMissKeys(a, 10_000, 1000));
+
+    static {
+        Arrays.sort(a);
+    }
+
+    @TestFactory
+    public List<DynamicTest> testsConcurrent() {
+        return Arrays.asList(
+                dynamicTest("1 thread", () -> testConcurrent(1, 0, a.length, 16, 0)),
+                dynamicTest("8 threads", () -> testConcurrent(8, 0, a.length, 16, 0)),
+                dynamicTest("8 threads, batch size 1", () -> testConcurrent(8, 0, a.length, 1, 0)),
+                dynamicTest("8 threads, batch size 5", () -> testConcurrent(8, 0, a.length, 5, 0)),
+                dynamicTest("8 threads, 10 us delay", () -> testConcurrent(8, 0, a.length, 16, 10_000)),
+                dynamicTest("8 threads, sub-range", () -> testConcurrent(8, 200, 700, 16, 0)),
+                dynamicTest("8 threads, empty!", () -> testConcurrent(8, 200, 200, 16, 0))
+        );
+    }
+
+    private void testConcurrent(int threads, int fromIndex, int toIndex,
+                                int maxBatchSize, long maxDelayNanos) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (CoalescingSearcher searcher = new CoalescingSearcher(a, fromIndex, toIndex,
+                maxBatchSize, maxDelayNanos, TimeUnit.NANOSECONDS)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int key : fiftyFiftyKeys) {
+                        int expected = Arrays.binarySearch(a, fromIndex, toIndex, key);
+                        assertEquals(expected, searcher.binarySearch(key), "key=" + key);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSearchAfterClose() {
+        try (CoalescingSearcher searcher = new CoalescingSearcher(new int[]{1, 2, 3}, 0, 3)) {
+            assertEquals(1, searcher.binarySearch(2));
+            searcher.close();
+            assertThrows(IllegalStateException.class, () -> searcher.binarySearch(2));
+        }
+    }
+
+    @Test
+    public void testCloseWhileBlocked() throws Exception {
+        // The batch can never fill up, and the dispatcher waits for more keys,
+        // until it is closed.
+        int threads = 8;
+        try (CoalescingSearcher searcher = new CoalescingSearcher(a, 0, a.length,
+                threads * 2, 1, TimeUnit.MINUTES)) {
+            List<FutureTask<Integer>> futures = startCallers(searcher, threads);
+
+            searcher.close();
+
+            for (int t = 0; t < threads; t++) {
+                int key = fiftyFiftyKeys[t];
+                assertEquals(Arrays.binarySearch(a, key), futures.get(t).get(10, TimeUnit.SECONDS), "key=" + key);
+            }
+        }
+    }
+
+    @Test
+    public void testDispatcherFailure() throws Exception {
+        int threads = 8;
+        RuntimeException failure = new RuntimeException("failure");
+        Semaphore release = new Semaphore(0);
+        try (CoalescingSearcher searcher = new CoalescingSearcher(a, 0, a.length, 1, 0, TimeUnit.NANOSECONDS,
+                (array, fromIndex, toIndex, keys, keysFromIndex, keysToIndex, results) -> {
+                    release.acquireUninterruptibly();
+                    throw failure;
+                })) {
+            List<FutureTask<Integer>> futures = startCallers(searcher, threads);
+
+            release.release();
+
+            for (FutureTask<Integer> future : futures) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+                assertInstanceOf(IllegalStateException.class, e.getCause());
+                assertSame(failure, e.getCause().getCause());
+            }
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> searcher.binarySearch(1));
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    /**
+     * Starts one caller thread per key, and waits until all callers are
+     * blocked in {@link CoalescingSearcher#binarySearch}.
+     */
+    private List<FutureTask<Integer>> startCallers(CoalescingSearcher searcher, int threads) throws InterruptedException {
+        List<FutureTask<Integer>> futures = new ArrayList<>();
+        List<Thread> callers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int key = fiftyFiftyKeys[t];
+            FutureTask<Integer> future = new FutureTask<>(() -> searcher.binarySearch(key));
+            Thread caller = new Thread(future);
+            futures.add(future);
+            callers.add(caller);
+            caller.start();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (Thread caller : callers) {
+            while (caller.getState() != Thread.State.WAITING) {
+                assertTrue(System.nanoTime() - deadline < 0, "caller is not blocked: " + caller.getState());
+                Thread.sleep(1);
+            }
+        }
+        return futures;
+    }
+
+    @TestFactory
+    public List<DynamicTest> testsCloseWhileSearching() {
+        return Arrays.asList(
+                dynamicTest("no delay", () -> testCloseWhileSearching(0)),
+                dynamicTest("10 us delay", () -> testCloseWhileSearching(10_000))
+        );
+    }
+
+    private void testCloseWhileSearching(long maxDelayNanos) throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (CoalescingSearcher searcher = new CoalescingSearcher(a, 0, a.length,
+                threads, maxDelayNanos, TimeUnit.NANOSECONDS)) {
+            CountDownLatch started = new CountDownLatch(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    started.countDown();
+                    for (int i = 0; ; i = (i + 1) % fiftyFiftyKeys.length) {
+                        int key = fiftyFiftyKeys[i];
+                        int actual;
+                        try {
+                            actual = searcher.binarySearch(key);
+                        } catch (IllegalStateException e) {
+                            return null;
+                        }
+                        assertEquals(Arrays.binarySearch(a, key), actual, "key=" + key);
+                    }
+                }));
+            }
+            started.await();
+            Thread.sleep(20);
+
+            searcher.close();
+
+            for (Future<?> f : futures) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testIllegalArguments() {
+        int[] a = {1, 2, 3};
+        assertThrows(IndexOutOfBoundsException.class, () -> new CoalescingSearcher(a, 0, 4));
+        assertThrows(IllegalArgumentException.class, () -> new CoalescingSearcher(a, 0, 3, 0, 0, TimeUnit.NANOSECONDS));
+        assertThrows(IllegalArgumentException.class, () -> new CoalescingSearcher(a, 0, 3, 8, -1, TimeUnit.NANOSECONDS));
+        assertThrows(IllegalArgumentException.class, () -> new CoalescingSearcher(a, 0, 3,
+                CoalescingSearcher.MAX_BATCH_SIZE + 1, 0, TimeUnit.NANOSECONDS));
+        assertThrows(IllegalArgumentException.class, () -> new CoalescingSearcher(a, 0, 3,
+                Integer.MAX_VALUE, 0, TimeUnit.NANOSECONDS));
+    }
+}